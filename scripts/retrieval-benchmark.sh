@@ -0,0 +1,22 @@
+#!/usr/bin/env bash
+#
+# Benchmark for the retrieval vector index (HnswIndex with HashingMessageEmbedder).
+#
+# Builds an index of synthetic chat messages and prints insert time, mean, p50, p99 and max search latency
+# and recall against a brute force scan for every ef in the list. The data is generated with a fixed seed,
+# see HnswIndexBenchmark.
+# Usage:
+#   scripts/retrieval-benchmark.sh [messages] [ef list] [k] [queries] [rounds]
+#
+# Defaults: 100000 messages, ef 32,40,48, k 13 (top-k 3 plus 10 recent messages), 1000 queries, 5 rounds.
+
+set -euo pipefail
+
+ROOT_DIR="$(cd "$(dirname "$0")/.." && pwd)"
+ARGS="${1:-100000} ${2:-32,40,48} ${3:-13} ${4:-1000} ${5:-5}"
+
+cd "$ROOT_DIR"
+mvn -B -q test-compile exec:java \
+    -Dexec.classpathScope=test \
+    -Dexec.mainClass=com.alanquintana.geminiCaller.services.HnswIndexBenchmark \
+    -Dexec.args="$ARGS"
@@ -0,0 +1,93 @@
+#!/usr/bin/env bash
+#
+# Startup benchmark for the plain, AOT and AOT + CDS variants of the application.
+#
+# For every variant the application is started RUNS times and the script measures:
+#   - time from launching the JVM until the first successful GET / (milliseconds)
+#   - resident set size of the JVM at that moment (MiB, from /proc/<pid>/status)
+#
+# The plain variant runs the fat jar with `java -jar target/<jar>`, as the application was started before
+# the fast-startup profile existed. The AOT variants run the extracted layout in target/cds that
+# `mvn -Pfast-startup package` creates, the same one the Docker image uses.
+# Requires Linux (/proc), bash and curl. Usage:
+#   scripts/startup-benchmark.sh [runs] [port]
+#
+# Set SKIP_BUILD=1 to reuse an existing build.
+
+set -euo pipefail
+
+RUNS="${1:-5}"
+PORT="${2:-8080}"
+ROOT_DIR="$(cd "$(dirname "$0")/.." && pwd)"
+CDS_DIR="$ROOT_DIR/target/cds"
+JAR_NAME="geminiCaller-0.0.1-SNAPSHOT.jar"
+FAT_JAR_DIR="$ROOT_DIR/target"
+TIMEOUT_SECONDS=60
+
+if [[ "${SKIP_BUILD:-0}" != "1" ]]; then
+    (cd "$ROOT_DIR" && mvn -B -q -Pfast-startup -DskipTests package)
+fi
+
+if [[ ! -f "$FAT_JAR_DIR/$JAR_NAME" || ! -f "$CDS_DIR/$JAR_NAME" || ! -f "$CDS_DIR/application.jsa" ]]; then
+    echo "Missing $FAT_JAR_DIR/$JAR_NAME, $CDS_DIR/$JAR_NAME or application.jsa, build with: mvn -Pfast-startup package" >&2
+    exit 1
+fi
+
+# Fails if something already listens on the port, otherwise curl would get its answer and record a bogus time.
+check_port_free() {
+    if (exec 3<>"/dev/tcp/localhost/$PORT") 2>/dev/null; then
+        echo "Port $PORT is already in use, stop whatever listens on it or pass another port" >&2
+        exit 1
+    fi
+}
+
+# Starts the jar in the given directory with the given JVM flags and prints "<milliseconds> <rss MiB>".
+measure() {
+    local dir="$1"
+    shift
+    local start pid elapsed rss
+    check_port_free
+    start=$(date +%s%N)
+    (cd "$dir" && exec env GEMINI_API_KEY=benchmark java "$@" -Dserver.port="$PORT" -jar "$JAR_NAME" >/dev/null 2>&1) &
+    pid=$!
+
+    until curl -sf -o /dev/null "http://localhost:$PORT/"; do
+        if ! kill -0 "$pid" 2>/dev/null; then
+            echo "Application exited before answering GET /" >&2
+            return 1
+        fi
+        if (( ($(date +%s%N) - start) / 1000000000 > TIMEOUT_SECONDS )); then
+            kill "$pid"
+            echo "Application did not answer GET / within ${TIMEOUT_SECONDS}s" >&2
+            return 1
+        fi
+        sleep 0.01
+    done
+
+    elapsed=$(( ($(date +%s%N) - start) / 1000000 ))
+    rss=$(awk '/VmRSS/ { printf "%.1f", $2 / 1024 }' "/proc/$pid/status")
+
+    kill "$pid"
+    wait "$pid" 2>/dev/null || true
+    echo "$elapsed $rss"
+}
+
+run_variant() {
+    local name="$1"
+    shift
+    local total_ms=0 total_rss=0 result ms rss
+    for ((i = 1; i <= RUNS; i++)); do
+        result=$(measure "$@")
+        read -r ms rss <<< "$result"
+        echo "$name,$i,$ms,$rss"
+        total_ms=$((total_ms + ms))
+        total_rss=$(awk -v a="$total_rss" -v b="$rss" 'BEGIN { print a + b }')
+    done
+    awk -v n="$name" -v t="$total_ms" -v r="$total_rss" -v runs="$RUNS" \
+        'BEGIN { printf "%s,mean,%.0f,%.1f\n", n, t / runs, r / runs }'
+}
+
+echo "variant,run,time_to_first_get_ms,rss_mib"
+run_variant plain "$FAT_JAR_DIR"
+run_variant aot "$CDS_DIR" -Dspring.aot.enabled=true
+run_variant aot-cds "$CDS_DIR" -Dspring.aot.enabled=true -XX:SharedArchiveFile=application.jsa
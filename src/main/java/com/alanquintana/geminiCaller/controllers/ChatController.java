@@ -6,9 +6,23 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import com.alanquintana.geminiCaller.services.GeminiReply;
 import com.alanquintana.geminiCaller.services.GeminiService;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /*
 * Controller for handling chat requests. This controller manages chat sessions,
 * message exchanges and chat navigation.
@@ -16,11 +30,20 @@ import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
 @Controller
 public class ChatController {
+    private static final Logger logger = LoggerFactory.getLogger(ChatController.class);
+
+    //How often a waiting chat request writes to the client, a failed write is how a disconnect is noticed.
+    private static final Duration HEARTBEAT = Duration.ofSeconds(1);
+    private static final String WAITING_PAGE = "<!DOCTYPE html><html><head><meta charset=\"UTF-8\">"
+            + "<title>Gemini Chat</title></head><body><p>Waiting for Gemini...</p>";
+
     private final GeminiService geminiService;
+    private final AsyncTaskExecutor taskExecutor;
 
-    //Constructor for the ChatController setting our geminiService.
-    public ChatController(GeminiService geminiService) {
+    //Constructor for the ChatController setting our geminiService and the executor that runs the chat requests.
+    public ChatController(GeminiService geminiService, AsyncTaskExecutor taskExecutor) {
         this.geminiService = geminiService;
+        this.taskExecutor = taskExecutor;
     }
 
     /*
@@ -87,23 +110,62 @@ public class ChatController {
     *
     * @param message, message sent by the user to the gemini API
     * @param chatId, this id is optional in case the conversation hasn't been created yet.
-    * @return, we return a redirection of the view with the id of the current chat.
+    * @return, an emitter that streams a waiting page ending with a redirection to the chat the message was stored in.
     *
     * This method:
-    * 1. checks if chatId is different from null, if it is, then we set the current chat id.
-    * 2. We call our function chatWithGemini, and we send the message as a parameter.
-    * 3. We return a redirection of the actual chat to update the view and display the message.
+    * 1. Runs chatWithGemini on the task executor, releasing the request thread. The chat id comes from
+    *    the request, not from the service's current chat, which other requests can change.
+    * 2. While waiting it writes a byte to the client every second. Tomcat only notices a client that
+    *    disconnected when a write fails, so a failed write (or a request timeout, spring.mvc.async.request-timeout)
+    *    interrupts chatWithGemini, which cancels the request to the Gemini API and stores nothing.
+    *    Nothing is written in the first second, so errors thrown right away, like ChatBusyException (429),
+    *    still get their status code.
+    * 3. When chatWithGemini returns, the page redirects to the chat it used (or to the home page if the
+    *    message was rejected before a chat was chosen) to update the view and display the message.
     *
     */
 
-    @PostMapping("/chat")
-    public String chat( @RequestParam String message, @RequestParam(required = false) Long chatId) {
-        if (chatId != null) {
-            geminiService.setCurrentChat(chatId);
-        }
-
-        String response = geminiService.chatWithGemini(message);
+    @PostMapping(value = "/chat", produces = MediaType.TEXT_HTML_VALUE)
+    public ResponseBodyEmitter chat( @RequestParam String message, @RequestParam(required = false) Long chatId) {
+        ResponseBodyEmitter page = new ResponseBodyEmitter();
+        AtomicBoolean answered = new AtomicBoolean();
+
+        Future<?> exchange = taskExecutor.submit(() -> {
+            try {
+                GeminiReply reply = geminiService.chatWithGemini(chatId, message);
+                if (answered.compareAndSet(false, true)) {
+                    redirect(page, reply.getChatId() == null ? "/" : "/chat/" + reply.getChatId());
+                }
+            } catch (RuntimeException e) {
+                if (answered.compareAndSet(false, true)) {
+                    page.completeWithError(e);
+                }
+            }
+        });
+
+        Disposable heartbeat = Flux.interval(HEARTBEAT, HEARTBEAT).subscribe(tick -> {
+            try {
+                page.send(tick == 0 ? WAITING_PAGE : " ", MediaType.TEXT_HTML);
+            } catch (IOException | IllegalStateException e) {
+                //The client went away (or the page is already complete, then cancelling does nothing).
+                exchange.cancel(true);
+            }
+        });
+        page.onCompletion(heartbeat::dispose);
+        page.onTimeout(() -> exchange.cancel(true));
+        page.onError(e -> exchange.cancel(true));
+
+        return page;
+    }
 
-        return "redirect:/chat/" + geminiService.getCurrentChatId();
+    //Ends the page with a redirection, the chat ids in the url are numbers so nothing needs escaping.
+    private void redirect(ResponseBodyEmitter page, String url) {
+        try {
+            page.send("<script>location.replace('" + url + "')</script><noscript><a href=\"" + url
+                    + "\">Open the chat</a></noscript></body></html>", MediaType.TEXT_HTML);
+            page.complete();
+        } catch (IOException | IllegalStateException e) {
+            logger.debug("Could not redirect to {}, the client is gone", url);
+        }
     }
 }
@@ -0,0 +1,16 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/*
+* Thrown when a chat already has as many messages waiting for their turn as ChatExecutor allows.
+* Answered with 429 so the client retries later instead of holding a worker thread while it waits.
+*/
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class ChatBusyException extends RuntimeException {
+
+    public ChatBusyException(Long chatId) {
+        super("Too many messages waiting in chat " + chatId);
+    }
+}
@@ -0,0 +1,91 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+* Runs tasks one at a time per chat session while tasks of different chats run in parallel.
+*
+* Each chat with pending work has a lane holding a fair lock, so tasks of the same chat run in the
+* order they arrived and each one sees everything stored by its predecessor. A lane counts the tasks
+* using it and is removed as soon as the last one finishes, so only chats with work in flight take memory.
+*
+* A waiting task holds its thread, so a lane accepts at most max-waiting tasks behind the running one and
+* rejects the rest. This way a single busy chat can't take every worker thread from the other chats.
+*
+* Properties:
+*   gemini.chat.max-waiting: tasks of the same chat allowed to wait for their turn.
+*/
+@Component
+public class ChatExecutor {
+
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+    private final int maxWaiting;
+
+    public ChatExecutor(@Value("${gemini.chat.max-waiting:4}") int maxWaiting) {
+        this.maxWaiting = maxWaiting;
+    }
+
+    /*
+    * Runs a task after every task previously submitted for the same chat has finished.
+    *
+    * @param chatId, id of the chat session the task belongs to.
+    * @param task, work to run, executed on the calling thread.
+    * @return the value returned by the task.
+    * @throws ChatBusyException if max-waiting tasks of this chat are already waiting, nothing is run.
+    * @throws CancellationException if the thread is interrupted while waiting for its turn.
+    */
+    public <T> T runInChat(Long chatId, Supplier<T> task) {
+        //Throwing inside compute leaves the lane unchanged.
+        Lane lane = lanes.compute(chatId, (id, existing) -> {
+            Lane current = existing == null ? new Lane() : existing;
+            if (current.users > maxWaiting) {
+                throw new ChatBusyException(chatId);
+            }
+            current.users++;
+            return current;
+        });
+
+        try {
+            lane.lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            release(chatId);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for chat " + chatId);
+        }
+
+        try {
+            return task.get();
+        } finally {
+            lane.lock.unlock();
+            release(chatId);
+        }
+    }
+
+    private void release(Long chatId) {
+        lanes.computeIfPresent(chatId, (id, current) -> --current.users == 0 ? null : current);
+    }
+
+    //Number of chats that currently have tasks running or waiting.
+    public int activeChats() {
+        return lanes.size();
+    }
+
+    //Number of tasks of a chat currently running or waiting.
+    public int pendingTasks(Long chatId) {
+        Lane lane = lanes.get(chatId);
+        return lane == null ? 0 : lane.users;
+    }
+
+    //Users is only written inside ConcurrentHashMap.compute calls for the lane's key, volatile for pendingTasks.
+    private static final class Lane {
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private volatile int users;
+    }
+}
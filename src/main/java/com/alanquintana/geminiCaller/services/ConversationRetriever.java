@@ -0,0 +1,155 @@
+package com.alanquintana.geminiCaller.services;
+
+import com.alanquintana.geminiCaller.models.Message;
+import com.alanquintana.geminiCaller.repositories.MessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+* Service that keeps an embedding of every stored message in an in-process vector index, so older
+* turns that are relevant to a new prompt can be added to the context next to the most recent ones.
+*
+* Retrieval is disabled by default, while disabled nothing is embedded and no index is built.
+*
+* Properties:
+*   gemini.retrieval.enabled: turns embedding and retrieval on.
+*   gemini.retrieval.top-k: maximum number of older messages to retrieve for a prompt.
+*   gemini.retrieval.scope: "chat" keeps one index per chat session, "global" searches across all chats.
+*   gemini.retrieval.ef-search: size of the candidate list used by the index while searching.
+*   gemini.retrieval.max-chat-indexes: with chat scope, how many chat indexes are kept in memory. The least
+*       recently used one is dropped past this number and rebuilt from the database when its chat is used again.
+*/
+@Service
+public class ConversationRetriever {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversationRetriever.class);
+    private static final Long GLOBAL_INDEX_KEY = -1L;
+    static final int HNSW_M = 16;
+    static final int HNSW_EF_CONSTRUCTION = 200;
+
+    private final MessageEmbedder embedder;
+    private final MessageRepository messageRepository;
+    //Access ordered, guarded by itself.
+    private final Map<Long, HnswIndex> indexes;
+
+    private final boolean enabled;
+    private final int topK;
+    private final boolean globalScope;
+    private final int efSearch;
+
+    public ConversationRetriever(MessageEmbedder embedder,
+                                 MessageRepository messageRepository,
+                                 @Value("${gemini.retrieval.enabled:false}") boolean enabled,
+                                 @Value("${gemini.retrieval.top-k:3}") int topK,
+                                 @Value("${gemini.retrieval.scope:chat}") String scope,
+                                 @Value("${gemini.retrieval.ef-search:32}") int efSearch,
+                                 @Value("${gemini.retrieval.max-chat-indexes:1000}") int maxChatIndexes) {
+        this.embedder = embedder;
+        this.messageRepository = messageRepository;
+        this.indexes = new LinkedHashMap<Long, HnswIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, HnswIndex> eldest) {
+                return size() > maxChatIndexes;
+            }
+        };
+        this.enabled = enabled;
+        this.topK = topK;
+        this.globalScope = "global".equalsIgnoreCase(scope);
+        this.efSearch = efSearch;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /*
+    * Embeds a stored message and adds it to the index of its chat (or to the global index).
+    *
+    * @param message, message already saved in the database, its id is used as the key in the index.
+    */
+    public void index(Message message) {
+        if (!enabled || message.getId() == null || message.getChat() == null) {
+            return;
+        }
+
+        HnswIndex index = cachedIndex(message.getChat().getId());
+        if (index == null) {
+            index = loadIndex(message.getChat().getId(), message.getId());
+        }
+        index.add(message.getId(), embed(message));
+        logger.debug("Indexed message {} of chat {}", message.getId(), message.getChat().getId());
+    }
+
+    /*
+    * Finds the ids of the stored messages most similar to the given prompt.
+    *
+    * @param chatId, chat session the prompt belongs to.
+    * @param prompt, text of the new user message.
+    * @param limit, maximum number of ids to return, callers ask for extra ids when some will be filtered out.
+    * @return ids of the closest messages, most similar first, or an empty list if retrieval is disabled.
+    */
+    public List<Long> findRelevantMessageIds(Long chatId, String prompt, int limit) {
+        if (!enabled || chatId == null) {
+            return Collections.emptyList();
+        }
+
+        HnswIndex index = cachedIndex(chatId);
+        if (index == null) {
+            if (globalScope) {
+                return Collections.emptyList();
+            }
+            index = loadIndex(chatId, null);
+        }
+        return index.search(embedder.embed(prompt), limit, efSearch);
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    private HnswIndex cachedIndex(Long chatId) {
+        synchronized (indexes) {
+            return indexes.get(globalScope ? GLOBAL_INDEX_KEY : chatId);
+        }
+    }
+
+    /*
+    * Creates the index of a chat (or the global index) that is not in memory.
+    *
+    * With chat scope the index is rebuilt from the messages of the chat stored in the database, so a chat whose
+    * index was dropped finds its older messages again. The database lookup runs outside the lock, the messages
+    * of a chat are indexed one exchange at a time (see ChatExecutor), so the same index is not built twice.
+    *
+    * @param chatId, chat the index belongs to.
+    * @param excludedId, id of a message the caller adds itself, null if there is none.
+    */
+    private HnswIndex loadIndex(Long chatId, Long excludedId) {
+        HnswIndex index = new HnswIndex(embedder.dimension(), HNSW_M, HNSW_EF_CONSTRUCTION);
+        Long key = GLOBAL_INDEX_KEY;
+        if (!globalScope) {
+            key = chatId;
+            for (Message stored : messageRepository.findByChatId(chatId)) {
+                if (!stored.getId().equals(excludedId)) {
+                    index.add(stored.getId(), embed(stored));
+                }
+            }
+            logger.debug("Loaded index of chat {} with {} messages", chatId, index.size());
+        }
+
+        synchronized (indexes) {
+            HnswIndex existing = indexes.putIfAbsent(key, index);
+            return existing != null ? existing : index;
+        }
+    }
+
+    private float[] embed(Message message) {
+        return embedder.embed(message.getUserMessage() + "\n" + message.getGeminiResponse());
+    }
+}
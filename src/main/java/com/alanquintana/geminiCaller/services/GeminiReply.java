@@ -0,0 +1,25 @@
+package com.alanquintana.geminiCaller.services;
+
+/*
+* Result of an exchange with gemini: the id of the chat the message was stored in and the text of the answer.
+* The chat id is the one chatWithGemini actually used, a new chat when the request had none, or null when
+* the message was rejected before a chat was chosen.
+*/
+public class GeminiReply {
+
+    private final Long chatId;
+    private final String response;
+
+    public GeminiReply(Long chatId, String response) {
+        this.chatId = chatId;
+        this.response = response;
+    }
+
+    public Long getChatId() {
+        return chatId;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+}
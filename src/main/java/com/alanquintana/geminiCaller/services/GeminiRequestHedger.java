@@ -0,0 +1,154 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/*
+* Sends a second copy of a slow Gemini request to cut the latency tail.
+*
+* If the first request has not answered after the configured percentile of recent latencies, a hedge
+* request is fired and whichever returns a value first is used, the other one is cancelled. Every
+* request adds max-fraction of a token to a budget and every hedge spends a whole token, so hedges can
+* never be more than that fraction of the traffic.
+*
+* Properties:
+*   gemini.hedging.enabled: turns hedging on.
+*   gemini.hedging.percentile: latency percentile (0-100) after which the hedge is fired.
+*   gemini.hedging.min-delay-ms: lower bound of the hedge delay.
+*   gemini.hedging.max-fraction: maximum share of requests that can be hedged.
+*/
+@Component
+public class GeminiRequestHedger {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeminiRequestHedger.class);
+    private static final int LATENCY_WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final double MAX_BUDGET_TOKENS = 10;
+
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayMillis;
+    private final double maxFraction;
+
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int latencyCount;
+    private int nextLatency;
+    private double budgetTokens;
+
+    public GeminiRequestHedger(@Value("${gemini.hedging.enabled:false}") boolean enabled,
+                               @Value("${gemini.hedging.percentile:95}") double percentile,
+                               @Value("${gemini.hedging.min-delay-ms:200}") long minDelayMillis,
+                               @Value("${gemini.hedging.max-fraction:0.05}") double maxFraction) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.maxFraction = maxFraction;
+    }
+
+    /*
+    * Runs an upstream request, hedging it if it is slower than usual and the budget allows it.
+    *
+    * @param request, creates a new upstream request each time it is called.
+    * @return a Mono with the first response, cancelling it also cancels every request still in flight.
+    *
+    * The latency window gets one sample per call, measured from the start of the first request to the
+    * first response, so calls that needed a hedge are counted with the time they really took.
+    */
+    public Mono<String> execute(Supplier<Mono<String>> request) {
+        if (!enabled) {
+            return request.get();
+        }
+
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            Long delay = hedgeDelayMillis();
+            Mono<String> response = delay == null ? request.get() : hedged(request, delay);
+            return response.doOnSuccess(body -> recordLatency((System.nanoTime() - start) / 1_000_000));
+        });
+    }
+
+    /*
+    * Races the request against a copy fired after the delay, the first one returning a value wins.
+    *
+    * An error only ends the call once no other request can still answer: a failed hedge leaves the primary
+    * running, and a primary that fails before the delay stops the hedge from being sent at all.
+    */
+    private Mono<String> hedged(Supplier<Mono<String>> request, long delay) {
+        Sinks.One<Boolean> primaryFailed = Sinks.one();
+        Mono<String> primary = request.get().doOnError(e -> primaryFailed.tryEmitValue(Boolean.TRUE));
+
+        Mono<String> hedge = Mono.delay(Duration.ofMillis(delay))
+                .takeUntilOther(primaryFailed.asMono())
+                .flatMap(tick -> {
+                    if (!tryAcquireHedge()) {
+                        return Mono.<String>empty();
+                    }
+                    logger.info("Gemini request slower than {} ms, sending hedge request", delay);
+                    return request.get();
+                });
+
+        return Mono.firstWithValue(primary, hedge).onErrorMap(GeminiRequestHedger::firstFailure);
+    }
+
+    //firstWithValue reports "no value" wrapping the real errors, callers need the original one (e.g. a 4xx response).
+    private static Throwable firstFailure(Throwable error) {
+        if (!(error instanceof NoSuchElementException)) {
+            return error;
+        }
+        List<Throwable> causes = new ArrayList<>();
+        if (error.getCause() != null) {
+            causes.addAll(Exceptions.unwrapMultiple(error.getCause()));
+        }
+        causes.addAll(Arrays.asList(error.getSuppressed()));
+        for (Throwable cause : causes) {
+            if (!(cause instanceof NoSuchElementException)) {
+                return cause;
+            }
+        }
+        return error;
+    }
+
+    /*
+    * Adds this request's share to the hedge budget and returns how long to wait before hedging.
+    *
+    * @return the delay in milliseconds, or null while there are not enough samples to estimate it.
+    */
+    private synchronized Long hedgeDelayMillis() {
+        budgetTokens = Math.min(MAX_BUDGET_TOKENS, budgetTokens + maxFraction);
+        if (latencyCount < MIN_SAMPLES) {
+            return null;
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        long delay = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        return Math.max(delay, minDelayMillis);
+    }
+
+    private synchronized boolean tryAcquireHedge() {
+        if (budgetTokens < 1) {
+            return false;
+        }
+        budgetTokens -= 1;
+        return true;
+    }
+
+    private synchronized void recordLatency(long millis) {
+        latencies[nextLatency] = millis;
+        nextLatency = (nextLatency + 1) % LATENCY_WINDOW;
+        latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+    }
+}
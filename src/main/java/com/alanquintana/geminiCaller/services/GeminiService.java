@@ -13,13 +13,17 @@ import com.alanquintana.geminiCaller.repositories.ChatRepository;
 import org.springframework.beans.factory.annotation.Value;
 import com.alanquintana.geminiCaller.repositories.MessageRepository;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Mono;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -41,6 +45,10 @@ public class GeminiService {
     * Repositories:
     *   chat: Instance for chatRepository
     *   message: Instance for messageRepository
+    *
+    * ConversationRetriever: optional vector index used to bring relevant older messages into the context.
+    * ChatExecutor: runs the exchanges of the same chat one after another, while different chats run in parallel.
+    * GeminiRequestHedger: sends a second request when gemini is slower than usual.
     */
     private static final Logger logger = LoggerFactory.getLogger(GeminiService.class);
     private static final int MAX_CONTEXT_MESSAGES = 10;
@@ -48,6 +56,9 @@ public class GeminiService {
     private final WebClient webClient;
     private final ChatRepository chatRepository;
     private final MessageRepository messageRepository;
+    private final ConversationRetriever conversationRetriever;
+    private final ChatExecutor chatExecutor;
+    private final GeminiRequestHedger requestHedger;
 
     //We define and get our API Key via environment variables.
     @Value("${gemini.api.key}")
@@ -63,11 +74,19 @@ public class GeminiService {
     * @param webClient: we define and build our url to the geminiApi.
     * @param chatRepository: Repository for managing chat sessions.
     * @param messageRepository: Repository for managing messages from chat sessions.
+    * @param conversationRetriever: Index of stored messages used to retrieve relevant older turns.
+    * @param chatExecutor: Executor that keeps the exchanges of each chat session in order.
+    * @param requestHedger: Hedges slow requests to the gemini api.
     */
-    public GeminiService(WebClient.Builder webClientBuilder, ChatRepository chatRepository, MessageRepository messageRepository) {
+    public GeminiService(WebClient.Builder webClientBuilder, ChatRepository chatRepository, MessageRepository messageRepository,
+                         ConversationRetriever conversationRetriever, ChatExecutor chatExecutor,
+                         GeminiRequestHedger requestHedger) {
         this.webClient = webClientBuilder.baseUrl("https://generativelanguage.googleapis.com/v1beta").build();
         this.chatRepository = chatRepository;
         this.messageRepository = messageRepository;
+        this.conversationRetriever = conversationRetriever;
+        this.chatExecutor = chatExecutor;
+        this.requestHedger = requestHedger;
 
     }
 
@@ -122,36 +141,81 @@ public class GeminiService {
     /*
     * Method that handles gemini message exchange between gemini api and our application.
     *
+    * @param chatId: id of the chat the message is sent to, null to start a new chat.
     * @param userMessage: message provided by the user that has to be sent to the Gemini API.
+    * @return the answer together with the id of the chat it was stored in.
+    *
+    * The chat is taken from the request only, never from currentChatId, so concurrent requests for
+    * different chats can't end up in each other's chat.
     *
     * This method:
     *  1. Checks if the message is null or empty, in case it is we return an empty message.
-    *  2. Checks if the chatId is null, if it´s true, we create a new instance of Chat and set
-    *       the createdAt property with the current time, then we save the chat with the chat repository and
-    *       set the current chat id with the id of the new object.
-    *  Inside try block.
-    *  3. Build the conversation context to provide message history and to make gemini remember previous messages.
-    *  4. Formats and escapes the message into a json request.
-    *  5. Makes a post petition to the geminiApi.
-    *  6. Parses the api response and extract the text from the Json object we got as response.
-    *  7. Creates a new instance of message and set to the current chat, and store the message in our database
-    *  8. Returns geminiResponse
+    *  2. Checks if the chatId is null or doesn't exist, if it´s true, we create a new instance of Chat and set
+    *       the createdAt property with the current time, then we save the chat with the chat repository.
+    *  3. Runs the exchange through the chatExecutor, so messages sent to the same chat at the same time are
+    *       answered one after another and each one includes the previous answer in its context.
+    *
+    * Throws ChatBusyException (answered with 429) when the chat already has too many messages waiting.
+    *
+    * If the calling thread is interrupted, the request to gemini is cancelled and nothing is stored. The
+    * ChatController does this when the client disconnects or the request times out (spring.mvc.async.request-timeout).
     */
-    public String chatWithGemini(String userMessage) {
+    public GeminiReply chatWithGemini(Long chatId, String userMessage) {
         if(userMessage == null || userMessage.trim().isEmpty()) {
             logger.warn("Gemini Message not set");
-            return "Message cannot be empty";
+            return new GeminiReply(chatId, "Message cannot be empty");
         }
 
-        if(currentChatId == null) {
-            Chat chat = new Chat();
-            chat.setCreatedAt(System.currentTimeMillis());
-            chat = chatRepository.save(chat);
-            currentChatId = chat.getId();
+        Long targetChatId = resolveChat(chatId);
+
+        try {
+            String response = chatExecutor.runInChat(targetChatId, () -> exchangeWithGemini(targetChatId, userMessage));
+            return new GeminiReply(targetChatId, response);
+        } catch (CancellationException e) {
+            logger.info("Request for chat {} cancelled while waiting for its turn", targetChatId);
+            return new GeminiReply(targetChatId, "Request cancelled");
+        }
+    }
+
+    /*
+    * Returns the given chat id if the chat exists, otherwise creates and stores a new chat session.
+    *
+    * @param chatId: id sent with the request, can be null.
+    * @return id of the chat the message will be stored in.
+    */
+    private Long resolveChat(Long chatId) {
+        if (chatId != null) {
+            if (chatRepository.existsById(chatId)) {
+                return chatId;
+            }
+            logger.warn("Message sent to non-existent chat {}, starting a new chat", chatId);
         }
 
+        Chat chat = new Chat();
+        chat.setCreatedAt(System.currentTimeMillis());
+        chat = chatRepository.save(chat);
+        return chat.getId();
+    }
+
+    /*
+    * Sends a message to the gemini api and stores the exchange, callers must hold the chat's turn in chatExecutor.
+    *
+    * @param chatId: id of the chat session the message belongs to.
+    * @param userMessage: message provided by the user that has to be sent to the Gemini API.
+    *
+    * This method:
+    *  Inside try block.
+    *  1. Build the conversation context to provide message history and to make gemini remember previous messages.
+    *  2. Formats and escapes the message into a json request.
+    *  3. Makes a post petition to the geminiApi, hedged by the requestHedger.
+    *  4. Parses the api response and extract the text from the Json object we got as response.
+    *  5. Creates a new instance of message and set to the chat, store the message in our database
+    *       and add it to the retrieval index.
+    *  6. Returns geminiResponse
+    */
+    private String exchangeWithGemini(Long chatId, String userMessage) {
         try {
-            String conversationContext = buildConversationContext();
+            String conversationContext = buildConversationContext(chatId, userMessage);
             String fullPrompt = conversationContext.isEmpty() ? userMessage : conversationContext + "\n\nUser: " + userMessage;
 
             String escapedPrompt = fullPrompt.replace("\\", "\\\\")
@@ -163,17 +227,17 @@ public class GeminiService {
             String requestBody = String.format("{\"contents\":[{\"parts\":[{\"text\":\"%s\"}]}]}", escapedPrompt);
             logger.debug("Gemini full prompt send: {}", fullPrompt);
 
-            Mono<String> response = webClient.post()
+            Mono<String> response = requestHedger.execute(() -> webClient.post()
                     .uri("/models/gemini-2.0-flash:generateContent?key={apiKey}", apiKey)
                     .contentType(MediaType.APPLICATION_JSON)
                     .bodyValue(requestBody)
                     .retrieve()
-                    .bodyToMono(String.class);
+                    .bodyToMono(String.class));
 
             String responseGemini = response.block();
             String extractedText = extractTextFromGeminiResponse(responseGemini);
 
-            Chat chat = chatRepository.findById(currentChatId)
+            Chat chat = chatRepository.findById(chatId)
                     .orElseThrow(() -> new RuntimeException("Current chat not found"));
 
             Message message = new Message();
@@ -181,10 +245,16 @@ public class GeminiService {
             message.setUserMessage(userMessage);
             message.setGeminiResponse(extractedText);
             message.setTimestamp(System.currentTimeMillis());
-            messageRepository.save(message);
+            message = messageRepository.save(message);
+            //Retrieval is optional, the answer is already stored so an indexing failure must not fail the exchange.
+            try {
+                conversationRetriever.index(message);
+            } catch (RuntimeException indexError) {
+                logger.error("Could not add message {} to the retrieval index", message.getId(), indexError);
+            }
 
             logger.info("Stored message in chat {}: user message length={}, response length={}",
-                    currentChatId, userMessage.length(), responseGemini.length());
+                    chatId, userMessage.length(), responseGemini.length());
             responseGemini = extractTextFromGeminiResponse(responseGemini);
 
             return responseGemini;
@@ -193,7 +263,7 @@ public class GeminiService {
             String errorDetails = e.getResponseBodyAsString();
             logger.error("Error communicating with Gemini API: {}", errorDetails);
             try {
-                Chat chat = chatRepository.findById(currentChatId)
+                Chat chat = chatRepository.findById(chatId)
                         .orElseThrow(() -> new RuntimeException("Current chat not found"));
                 Message errorMessage = new Message();
                 errorMessage.setChat(chat);
@@ -206,6 +276,12 @@ public class GeminiService {
             }
             return "Error communicating with Gemini API: " + errorDetails;
         } catch (Exception e) {
+            //block() disposes the request when interrupted and rethrows the InterruptedException wrapped.
+            if (Exceptions.unwrap(e) instanceof InterruptedException || Thread.currentThread().isInterrupted()) {
+                Thread.currentThread().interrupt();
+                logger.info("Gemini request for chat {} cancelled", chatId);
+                return "Request cancelled";
+            }
             logger.error("Unexpected error", e);
             return "Unexpected error: " + e.getMessage();
         }
@@ -240,30 +316,39 @@ public class GeminiService {
     /*
     * Builds context in order to make gemini remember the previous messages in a chat session.
     *
+    * @param chatId, id of the chat session whose messages are used.
+    * @param userMessage, the new message, used to look up relevant older messages when retrieval is enabled.
     * @return A formated string containing the last messages set in MAX_CONTEXT_MESSAGES
     *
     * This method:
     * 1. Checks if a chat session exists, if true, returns an empty string to provide no context to the new session.
     * 2. Create a list with the latest messages retrieving them from our database with a limit of 10 messages or the ones set in MAX_CONTENT_MESSAGES.
     * 3. Reverse order to make older messages appear first in context.
-    * 4. Formats the messages into a structured conversation with tags for gemini messages and user messages.
-    * 5. Return the formated conversation history as a string.
+    * 4. If retrieval is enabled, prepends the older messages most similar to the new one that are not already
+    *    part of the recent messages.
+    * 5. Formats the messages into a structured conversation with tags for gemini messages and user messages.
+    * 6. Return the formated conversation history as a string.
+    *
+    * Package-private so GeminiServiceTest can check the context without calling the gemini api.
     */
-    private String buildConversationContext(){
-        if(currentChatId == null) {
+    String buildConversationContext(Long chatId, String userMessage){
+        if(chatId == null) {
             return "";
         }
 
         List<Message> recentMessages = StreamSupport
-                .stream(messageRepository.findByChatIdOrderByTimestampDesc(currentChatId).spliterator(), false)
+                .stream(messageRepository.findByChatIdOrderByTimestampDesc(chatId).spliterator(), false)
                 .limit(MAX_CONTEXT_MESSAGES)
                 .collect(Collectors.toList());
 
         java.util.Collections.reverse(recentMessages);
 
+        List<Message> contextMessages = new ArrayList<>(findRelevantOlderMessages(chatId, userMessage, recentMessages));
+        contextMessages.addAll(recentMessages);
+
         StringBuilder conversationContext = new StringBuilder();
 
-        for(Message msg : recentMessages){
+        for(Message msg : contextMessages){
             if(conversationContext.length() > 0) {
                 conversationContext.append("\n\n");
             }
@@ -274,6 +359,43 @@ public class GeminiService {
         return conversationContext.toString();
     }
 
+    /*
+    * Retrieves the stored messages most similar to the new user message, leaving out the recent ones.
+    *
+    * @param chatId, id of the chat session the new message belongs to.
+    * @param userMessage, the new message sent by the user.
+    * @param recentMessages, messages already included in the context.
+    * @return up to top-k older messages in chronological order, empty if retrieval is disabled or fails.
+    */
+    private List<Message> findRelevantOlderMessages(Long chatId, String userMessage, List<Message> recentMessages) {
+        if (!conversationRetriever.isEnabled()) {
+            return new ArrayList<>();
+        }
+
+        Set<Long> recentIds = recentMessages.stream().map(Message::getId).collect(Collectors.toSet());
+        List<Long> retrievedIds;
+        try {
+            retrievedIds = conversationRetriever
+                    .findRelevantMessageIds(chatId, userMessage, conversationRetriever.getTopK() + recentIds.size());
+        } catch (RuntimeException retrievalError) {
+            logger.error("Could not search the retrieval index, using recent messages only", retrievalError);
+            return new ArrayList<>();
+        }
+
+        List<Long> relevantIds = retrievedIds.stream()
+                .filter(id -> !recentIds.contains(id))
+                .limit(conversationRetriever.getTopK())
+                .collect(Collectors.toList());
+
+        if (relevantIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<Message> relevantMessages = new ArrayList<>(messageRepository.findAllById(relevantIds));
+        relevantMessages.sort(Comparator.comparing(Message::getTimestamp));
+        return relevantMessages;
+    }
+
     /*
     * Extract the text from the Json response returned by the Gemini API
     *
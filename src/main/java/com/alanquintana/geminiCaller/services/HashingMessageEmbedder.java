@@ -0,0 +1,77 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+/*
+* Local, deterministic embedder based on feature hashing.
+*
+* Every lower cased word and every pair of consecutive words is hashed into one of DIMENSION buckets,
+* with a second hash deciding the sign so collisions tend to cancel out. The resulting vector is
+* normalized, so the dot product between two embeddings is their cosine similarity.
+*/
+@Component
+public class HashingMessageEmbedder implements MessageEmbedder {
+
+    private static final int DIMENSION = 128;
+
+    @Override
+    public int dimension() {
+        return DIMENSION;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] vector = new float[DIMENSION];
+        if (text == null) {
+            return vector;
+        }
+
+        String[] tokens = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+        String previous = null;
+        for (String token : tokens) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            addFeature(vector, token, 1.0f);
+            if (previous != null) {
+                addFeature(vector, previous + " " + token, 0.5f);
+            }
+            previous = token;
+        }
+
+        normalize(vector);
+        return vector;
+    }
+
+    private static void addFeature(float[] vector, String feature, float weight) {
+        int hash = mix(feature.hashCode());
+        int bucket = (hash & 0x7fffffff) % DIMENSION;
+        vector[bucket] += (hash >>> 31) == 0 ? weight : -weight;
+    }
+
+    //Finalizer from MurmurHash3, spreads String.hashCode so short tokens don't cluster in a few buckets.
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static void normalize(float[] vector) {
+        double sum = 0;
+        for (float v : vector) {
+            sum += v * v;
+        }
+        if (sum == 0) {
+            return;
+        }
+        float norm = (float) Math.sqrt(sum);
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+    }
+}
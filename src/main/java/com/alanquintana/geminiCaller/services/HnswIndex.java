@@ -0,0 +1,581 @@
+package com.alanquintana.geminiCaller.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+* In-memory approximate nearest neighbour index (Hierarchical Navigable Small World graph).
+*
+* Vectors are expected to be normalized, the distance between two of them is 1 - dot product.
+* Each node lives on layer 0 and, with exponentially decreasing probability, on the layers above.
+* A search walks greedily through the sparse upper layers and then explores layer 0 with a bounded
+* candidate list, so the number of vectors compared grows roughly with the logarithm of the index size.
+*
+* Storage: vectors, ids and layer 0 links are kept in flat arrays split in chunks of CHUNK_SIZE nodes,
+* so the vectors of neighbouring nodes are contiguous. A new chunk starts with room for
+* MIN_CHUNK_CAPACITY nodes and doubles until it holds CHUNK_SIZE, so an index with a handful of
+* messages (one per chat by default) stays a few KB, and only those small chunks are ever copied.
+*
+* Locking: inserts are serialized by insertLock and do their graph search and neighbour selection
+* without blocking searches. The write lock is only taken to publish the new node and its back links,
+* which is a few array copies. Searches take the read lock.
+*/
+public class HnswIndex {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MIN_CHUNK_CAPACITY = 8;
+
+    private final int dimension;
+    private final int m;
+    private final int maxLinksLayer0;
+    private final int layer0Stride;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random;
+
+    private final ReentrantLock insertLock = new ReentrantLock();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Layer 0 links of a node: slot 0 holds the count, followed by up to maxLinksLayer0 node indexes.
+    private float[][] vectorChunks = new float[0][];
+    private long[][] idChunks = new long[0][];
+    private int[][] layer0Chunks = new int[0][];
+    //Links of the layers above 0, null for nodes that only live on layer 0, same count-first layout.
+    private int[][][][] upperChunks = new int[0][][][];
+
+    private int size;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    /*
+    * @param dimension, length of the vectors stored in this index.
+    * @param m, number of links created for every new node on each layer (layer 0 keeps up to 2 * m).
+    * @param efConstruction, size of the candidate list used while inserting, higher values build a better graph.
+    */
+    public HnswIndex(int dimension, int m, int efConstruction) {
+        if (dimension <= 0 || m < 2 || efConstruction < m) {
+            throw new IllegalArgumentException("Invalid HNSW parameters");
+        }
+        this.dimension = dimension;
+        this.m = m;
+        this.maxLinksLayer0 = 2 * m;
+        this.layer0Stride = maxLinksLayer0 + 1;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1 / Math.log(m);
+        this.random = new Random(42);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+    * Adds a vector to the index.
+    *
+    * @param id, identifier returned by search when this vector is one of the closest.
+    * @param vector, normalized vector of length dimension.
+    */
+    public void add(long id, float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected vector of dimension " + dimension + " but got " + vector.length);
+        }
+
+        insertLock.lock();
+        try {
+            //Only inserts change the graph and they hold insertLock, so it can be read here without the read lock.
+            int index = size;
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            ensureCapacity(index);
+            writeNode(index, id, vector, level);
+
+            List<LinkUpdate> updates = new ArrayList<>();
+            if (entryPoint >= 0) {
+                Query query = new Query(vector);
+                int current = entryPoint;
+                for (int layer = maxLevel; layer > level; layer--) {
+                    current = greedyClosest(query, current, layer);
+                }
+
+                for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+                    Candidates candidates = searchLayer(query, current, efConstruction, layer);
+                    Candidates selected = selectNeighbours(candidates, m);
+                    setLinks(index, layer, selected.nodes, selected.size);
+                    for (int i = 0; i < selected.size; i++) {
+                        int neighbour = selected.nodes[i];
+                        updates.add(new LinkUpdate(neighbour, layer, backLinks(neighbour, index, layer)));
+                    }
+                    current = candidates.nodes[0];
+                }
+            }
+
+            publish(index, level, updates);
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    /*
+    * Returns the ids of the (approximately) k closest vectors, closest first.
+    *
+    * @param query, normalized vector of length dimension.
+    * @param k, maximum number of ids to return.
+    * @param ef, size of the candidate list on layer 0, higher values trade speed for recall.
+    */
+    public List<Long> search(float[] query, int k, int ef) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Expected vector of dimension " + dimension + " but got " + query.length);
+        }
+
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || k <= 0) {
+                return Collections.emptyList();
+            }
+
+            Query prepared = new Query(query);
+            int current = entryPoint;
+            for (int layer = maxLevel; layer > 0; layer--) {
+                current = greedyClosest(prepared, current, layer);
+            }
+
+            Candidates candidates = searchLayer(prepared, current, Math.max(ef, k), 0);
+            int count = Math.min(k, candidates.size);
+            List<Long> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int node = candidates.nodes[i];
+                ids.add(idChunks[node >>> CHUNK_SHIFT][node & CHUNK_MASK]);
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Allocates or doubles the chunk holding the given node index if it has no room for it yet.
+    private void ensureCapacity(int index) {
+        int chunk = index >>> CHUNK_SHIFT;
+        int offset = index & CHUNK_MASK;
+        if (chunk < idChunks.length && offset < idChunks[chunk].length) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (chunk == idChunks.length) {
+                vectorChunks = Arrays.copyOf(vectorChunks, chunk + 1);
+                vectorChunks[chunk] = new float[0];
+                idChunks = Arrays.copyOf(idChunks, chunk + 1);
+                idChunks[chunk] = new long[0];
+                layer0Chunks = Arrays.copyOf(layer0Chunks, chunk + 1);
+                layer0Chunks[chunk] = new int[0];
+                upperChunks = Arrays.copyOf(upperChunks, chunk + 1);
+                upperChunks[chunk] = new int[0][][];
+            }
+
+            int capacity = Math.min(CHUNK_SIZE, Math.max(MIN_CHUNK_CAPACITY, 2 * idChunks[chunk].length));
+            vectorChunks[chunk] = Arrays.copyOf(vectorChunks[chunk], capacity * dimension);
+            idChunks[chunk] = Arrays.copyOf(idChunks[chunk], capacity);
+            layer0Chunks[chunk] = Arrays.copyOf(layer0Chunks[chunk], capacity * layer0Stride);
+            upperChunks[chunk] = Arrays.copyOf(upperChunks[chunk], capacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Fills the slot of a node that is not published yet, searches never reach indexes >= size.
+    private void writeNode(int index, long id, float[] vector, int level) {
+        int chunk = index >>> CHUNK_SHIFT;
+        int offset = index & CHUNK_MASK;
+        System.arraycopy(vector, 0, vectorChunks[chunk], offset * dimension, dimension);
+        idChunks[chunk][offset] = id;
+        if (level > 0) {
+            int[][] upper = new int[level][];
+            for (int layer = 0; layer < level; layer++) {
+                upper[layer] = new int[m + 1];
+            }
+            upperChunks[chunk][offset] = upper;
+        }
+    }
+
+    //Makes the new node reachable: applies the back links and grows the size under the write lock.
+    private void publish(int index, int level, List<LinkUpdate> updates) {
+        lock.writeLock().lock();
+        try {
+            for (LinkUpdate update : updates) {
+                setLinks(update.node, update.layer, update.links, update.links.length);
+            }
+            size = index + 1;
+            if (level > maxLevel) {
+                entryPoint = index;
+                maxLevel = level;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Moves to the closest neighbour until no neighbour on this layer is closer to the query.
+    private int greedyClosest(Query query, int start, int layer) {
+        int current = start;
+        float currentDistance = distance(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] links = linkArray(current, layer);
+            int base = linkBase(current, layer);
+            int count = links[base];
+            for (int i = 1; i <= count; i++) {
+                int neighbour = links[base + i];
+                float d = distance(query, neighbour);
+                if (d < currentDistance) {
+                    currentDistance = d;
+                    current = neighbour;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    //Best-first search on a single layer keeping the ef closest nodes found, returned closest first.
+    private Candidates searchLayer(Query query, int start, int ef, int layer) {
+        //A search visits about ef nodes per link slot, never more than the index holds.
+        VisitedSet visited = new VisitedSet(Math.min(size, ef * (layer == 0 ? maxLinksLayer0 : m)));
+        NodeHeap toVisit = new NodeHeap();
+        //Keys are negated distances, so the top of this min-heap is the farthest result.
+        NodeHeap results = new NodeHeap();
+
+        float startDistance = distance(query, start);
+        visited.add(start);
+        toVisit.push(start, startDistance);
+        results.push(start, -startDistance);
+
+        while (toVisit.size > 0) {
+            float closestDistance = toVisit.topKey();
+            int closest = toVisit.pop();
+            if (closestDistance > -results.topKey() && results.size >= ef) {
+                break;
+            }
+
+            int[] links = linkArray(closest, layer);
+            int base = linkBase(closest, layer);
+            int count = links[base];
+            for (int i = 1; i <= count; i++) {
+                int neighbour = links[base + i];
+                if (!visited.add(neighbour)) {
+                    continue;
+                }
+
+                float d = distance(query, neighbour);
+                if (results.size < ef || d < -results.topKey()) {
+                    toVisit.push(neighbour, d);
+                    results.push(neighbour, -d);
+                    if (results.size > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+
+        Candidates sorted = new Candidates(results.size);
+        sorted.size = results.size;
+        for (int i = sorted.size - 1; i >= 0; i--) {
+            sorted.distances[i] = -results.topKey();
+            sorted.nodes[i] = results.pop();
+        }
+        return sorted;
+    }
+
+    /*
+    * Picks up to max neighbours from candidates sorted closest first, skipping a candidate when it is closer
+    * to an already selected neighbour than to the base node. This keeps links pointing in different
+    * directions instead of all into the same cluster, which shortens the paths searches have to walk.
+    */
+    private Candidates selectNeighbours(Candidates candidates, int max) {
+        Candidates selected = new Candidates(max);
+        for (int i = 0; i < candidates.size && selected.size < max; i++) {
+            int candidate = candidates.nodes[i];
+            boolean diverse = true;
+            for (int j = 0; j < selected.size; j++) {
+                if (distance(candidate, selected.nodes[j]) < candidates.distances[i]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate, candidates.distances[i]);
+            }
+        }
+        return selected;
+    }
+
+    //Computes the links of an existing node once the new node is added, re-selecting them when the layer is full.
+    private int[] backLinks(int node, int newNode, int layer) {
+        int[] links = linkArray(node, layer);
+        int base = linkBase(node, layer);
+        int count = links[base];
+        int capacity = layer == 0 ? maxLinksLayer0 : m;
+
+        if (count < capacity) {
+            int[] updated = Arrays.copyOfRange(links, base + 1, base + count + 2);
+            updated[count] = newNode;
+            return updated;
+        }
+
+        Candidates candidates = new Candidates(count + 1);
+        candidates.add(newNode, distance(node, newNode));
+        for (int i = 1; i <= count; i++) {
+            candidates.add(links[base + i], distance(node, links[base + i]));
+        }
+        candidates.sortByDistance();
+
+        Candidates selected = selectNeighbours(candidates, capacity);
+        return Arrays.copyOf(selected.nodes, selected.size);
+    }
+
+    private void setLinks(int node, int layer, int[] neighbours, int count) {
+        int[] links = linkArray(node, layer);
+        int base = linkBase(node, layer);
+        links[base] = count;
+        System.arraycopy(neighbours, 0, links, base + 1, count);
+    }
+
+    private int[] linkArray(int node, int layer) {
+        if (layer == 0) {
+            return layer0Chunks[node >>> CHUNK_SHIFT];
+        }
+        return upperChunks[node >>> CHUNK_SHIFT][node & CHUNK_MASK][layer - 1];
+    }
+
+    private int linkBase(int node, int layer) {
+        return layer == 0 ? (node & CHUNK_MASK) * layer0Stride : 0;
+    }
+
+    private float distance(Query query, int node) {
+        float[] vectors = vectorChunks[node >>> CHUNK_SHIFT];
+        int offset = (node & CHUNK_MASK) * dimension;
+        if (query.nonZero == null) {
+            return 1 - dot(query.values, 0, vectors, offset);
+        }
+
+        float sum = 0;
+        for (int i = 0; i < query.nonZero.length; i++) {
+            int component = query.nonZero[i];
+            sum += query.values[component] * vectors[offset + component];
+        }
+        return 1 - sum;
+    }
+
+    private float distance(int a, int b) {
+        return 1 - dot(vectorChunks[a >>> CHUNK_SHIFT], (a & CHUNK_MASK) * dimension,
+                vectorChunks[b >>> CHUNK_SHIFT], (b & CHUNK_MASK) * dimension);
+    }
+
+    //Four independent sums let the JIT keep several multiplications in flight at once.
+    private float dot(float[] a, int aOffset, float[] b, int bOffset) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int limit = dimension - 3; i < limit; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < dimension; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    /*
+    * A vector being searched for. Hashed embeddings of short messages have most components at zero
+    * (a 20 word message sets about 35 of 128), so when at most half of them are set the dot products
+    * only read those components, which is most of the work of a search.
+    */
+    private static final class Query {
+        private final float[] values;
+        private final int[] nonZero;
+
+        private Query(float[] values) {
+            this.values = values;
+            int count = 0;
+            for (float value : values) {
+                if (value != 0) {
+                    count++;
+                }
+            }
+
+            if (count * 2 > values.length) {
+                this.nonZero = null;
+                return;
+            }
+            this.nonZero = new int[count];
+            for (int i = 0, j = 0; i < values.length; i++) {
+                if (values[i] != 0) {
+                    nonZero[j++] = i;
+                }
+            }
+        }
+    }
+
+    //New links of an existing node, computed while inserting and applied when the new node is published.
+    private static final class LinkUpdate {
+        private final int node;
+        private final int layer;
+        private final int[] links;
+
+        private LinkUpdate(int node, int layer, int[] links) {
+            this.node = node;
+            this.layer = layer;
+            this.links = links;
+        }
+    }
+
+    //Node indexes with their distance to a base vector.
+    private static final class Candidates {
+        private final int[] nodes;
+        private final float[] distances;
+        private int size;
+
+        private Candidates(int capacity) {
+            this.nodes = new int[capacity];
+            this.distances = new float[capacity];
+        }
+
+        private void add(int node, float distance) {
+            nodes[size] = node;
+            distances[size] = distance;
+            size++;
+        }
+
+        //Insertion sort, candidate lists are at most 2 * m + 1 long.
+        private void sortByDistance() {
+            for (int i = 1; i < size; i++) {
+                int node = nodes[i];
+                float distance = distances[i];
+                int j = i - 1;
+                while (j >= 0 && distances[j] > distance) {
+                    nodes[j + 1] = nodes[j];
+                    distances[j + 1] = distances[j];
+                    j--;
+                }
+                nodes[j + 1] = node;
+                distances[j + 1] = distance;
+            }
+        }
+    }
+
+    //Binary min-heap of node indexes keyed by a float, avoids boxing one object per visited node.
+    private static final class NodeHeap {
+        private float[] keys = new float[64];
+        private int[] nodes = new int[64];
+        private int size;
+
+        private void push(int node, float key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                nodes[i] = nodes[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+        }
+
+        private float topKey() {
+            return keys[0];
+        }
+
+        private int pop() {
+            int top = nodes[0];
+            size--;
+            if (size > 0) {
+                float key = keys[size];
+                int node = nodes[size];
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && keys[child + 1] < keys[child]) {
+                        child++;
+                    }
+                    if (keys[child] >= key) {
+                        break;
+                    }
+                    keys[i] = keys[child];
+                    nodes[i] = nodes[child];
+                    i = child;
+                }
+                keys[i] = key;
+                nodes[i] = node;
+            }
+            return top;
+        }
+    }
+
+    /*
+    * Open addressing set of visited node indexes, created per search so its memory is proportional to the
+    * nodes a search visits (about a thousand with ef 32) and released with the search.
+    */
+    private static final class VisitedSet {
+        private int[] table;
+        private int count;
+
+        //Sized so the expected number of nodes fills at most a quarter of the table and it rarely grows.
+        private VisitedSet(int expected) {
+            table = new int[Math.max(16, Integer.highestOneBit(Math.max(1, expected) * 4 - 1) << 1)];
+        }
+
+        //Returns true if the node had not been visited yet.
+        private boolean add(int node) {
+            if ((count + 1) * 2 > table.length) {
+                int[] old = table;
+                table = new int[old.length * 2];
+                count = 0;
+                for (int stored : old) {
+                    if (stored != 0) {
+                        add(stored - 1);
+                    }
+                }
+            }
+
+            //Slots store node + 1 so that 0 means empty.
+            int key = node + 1;
+            int mask = table.length - 1;
+            int h = node * 0x9E3779B9;
+            int i = (h ^ (h >>> 16)) & mask;
+            while (table[i] != 0) {
+                if (table[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = key;
+            count++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.alanquintana.geminiCaller.services;
+
+/*
+* Turns a piece of chat text into a fixed size vector so similar messages end up close to each other.
+*
+* The default implementation is HashingMessageEmbedder, which runs locally and always returns the same
+* vector for the same text. A different embedder (for example one backed by an embedding API) can be
+* plugged in by declaring it as a @Primary bean.
+*/
+public interface MessageEmbedder {
+
+    /*
+    * @return the number of components of every vector returned by embed.
+    */
+    int dimension();
+
+    /*
+    * @param text, text to embed.
+    * @return a vector of length dimension() with an L2 norm of 1, or all zeros if the text has no content.
+    */
+    float[] embed(String text);
+}
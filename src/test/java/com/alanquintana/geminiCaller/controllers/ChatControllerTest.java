@@ -2,18 +2,23 @@ package com.alanquintana.geminiCaller.controllers;
 
 import com.alanquintana.geminiCaller.models.Chat;
 import com.alanquintana.geminiCaller.models.Message;
+import com.alanquintana.geminiCaller.services.ChatBusyException;
+import com.alanquintana.geminiCaller.services.GeminiReply;
 import com.alanquintana.geminiCaller.services.GeminiService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -113,18 +118,22 @@ public class ChatControllerTest {
         String userMessage = "Hello, Gemini!";
         String aiResponse = "Hello! How can I assist you today?";
 
-        when(geminiService.getCurrentChatId()).thenReturn(chatId);
-        when(geminiService.chatWithGemini(userMessage)).thenReturn(aiResponse);
+        when(geminiService.chatWithGemini(chatId, userMessage)).thenReturn(new GeminiReply(chatId, aiResponse));
 
-        mockMvc.perform(post("/chat")
+        MvcResult asyncResult = mockMvc.perform(post("/chat")
                         .param("message", userMessage)
                         .param("chatId", chatId.toString()))
-                .andExpect(status().is3xxRedirection())
-                .andExpect(redirectedUrl("/chat/" + chatId));
+                .andExpect(request().asyncStarted())
+                .andReturn();
 
-        verify(geminiService).setCurrentChat(chatId);
-        verify(geminiService).chatWithGemini(userMessage);
-        verify(geminiService).getCurrentChatId();
+        asyncResult.getAsyncResult(5000);
+        mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("location.replace('/chat/" + chatId + "')")));
+
+        verify(geminiService).chatWithGemini(chatId, userMessage);
+        verify(geminiService, never()).setCurrentChat(any());
+        verify(geminiService, never()).getCurrentChatId();
     }
 
     @Test
@@ -133,17 +142,75 @@ public class ChatControllerTest {
         String userMessage = "Tell me about Spring Boot";
         String aiResponse = "Spring Boot is a Java-based framework...";
 
-        when(geminiService.getCurrentChatId()).thenReturn(newChatId);
-        when(geminiService.chatWithGemini(userMessage)).thenReturn(aiResponse);
+        when(geminiService.chatWithGemini(null, userMessage)).thenReturn(new GeminiReply(newChatId, aiResponse));
 
-        mockMvc.perform(post("/chat")
+        MvcResult asyncResult = mockMvc.perform(post("/chat")
                         .param("message", userMessage))
-                .andExpect(status().is3xxRedirection())
-                .andExpect(redirectedUrl("/chat/" + newChatId));
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        asyncResult.getAsyncResult(5000);
+        mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("location.replace('/chat/" + newChatId + "')")));
 
         verify(geminiService, never()).setCurrentChat(any());
-        verify(geminiService).chatWithGemini(userMessage);
-        verify(geminiService).getCurrentChatId();
+        verify(geminiService).chatWithGemini(null, userMessage);
+        verify(geminiService, never()).getCurrentChatId();
+    }
+
+    /*
+    * The redirect goes to the chat chatWithGemini stored the message in, here a new chat
+    * because the posted one doesn't exist, even if the service's current chat is another one.
+    * The redirect is the end of the streamed waiting page, so the status is 200.
+    */
+    @Test
+    public void testChatRedirectsToChatUsedByService() throws Exception {
+        String userMessage = "Hello again";
+
+        when(geminiService.getCurrentChatId()).thenReturn(9L);
+        when(geminiService.chatWithGemini(4L, userMessage)).thenReturn(new GeminiReply(7L, "Hi!"));
+
+        MvcResult asyncResult = mockMvc.perform(post("/chat")
+                        .param("message", userMessage)
+                        .param("chatId", "4"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        asyncResult.getAsyncResult(5000);
+        mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("location.replace('/chat/7')")));
+    }
+
+    @Test
+    public void testEmptyMessageWithoutChatRedirectsHome() throws Exception {
+        when(geminiService.chatWithGemini(null, " ")).thenReturn(new GeminiReply(null, "Message cannot be empty"));
+
+        MvcResult asyncResult = mockMvc.perform(post("/chat")
+                        .param("message", " "))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        asyncResult.getAsyncResult(5000);
+        mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("location.replace('/')")));
+    }
+
+    @Test
+    public void testBusyChatAnswersTooManyRequests() throws Exception {
+        when(geminiService.chatWithGemini(3L, "Hello")).thenThrow(new ChatBusyException(3L));
+
+        MvcResult asyncResult = mockMvc.perform(post("/chat")
+                        .param("message", "Hello")
+                        .param("chatId", "3"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        asyncResult.getAsyncResult(5000);
+        mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isTooManyRequests());
     }
 
     // Helper methods to create test data
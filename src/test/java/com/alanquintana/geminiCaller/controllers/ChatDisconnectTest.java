@@ -0,0 +1,66 @@
+package com.alanquintana.geminiCaller.controllers;
+
+import com.alanquintana.geminiCaller.repositories.MessageRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+* Runs the real server, Gemini never answers, and the client closes its connection while waiting.
+* The heartbeat write fails and the request to Gemini must be cancelled without storing anything.
+*/
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "gemini.api.key=test-key")
+public class ChatDisconnectTest {
+
+    private static final CountDownLatch geminiCalled = new CountDownLatch(1);
+    private static final CountDownLatch geminiCancelled = new CountDownLatch(1);
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @TestConfiguration
+    static class SilentGemini {
+        @Bean
+        @Primary
+        WebClient.Builder silentGeminiWebClient() {
+            return WebClient.builder().exchangeFunction(request -> Mono.<ClientResponse>never()
+                    .doOnSubscribe(subscription -> geminiCalled.countDown())
+                    .doOnCancel(geminiCancelled::countDown));
+        }
+    }
+
+    @Test
+    public void testClientDisconnectCancelsGeminiRequest() throws Exception {
+        String body = "message=hello";
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /chat HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\n"
+                    + "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            assertTrue(geminiCalled.await(10, TimeUnit.SECONDS));
+        }
+
+        assertTrue(geminiCancelled.await(10, TimeUnit.SECONDS));
+        assertEquals(0, messageRepository.count());
+    }
+}
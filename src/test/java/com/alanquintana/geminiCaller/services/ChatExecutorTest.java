@@ -0,0 +1,152 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ChatExecutorTest {
+
+    /*
+    * Tasks of the same chat never overlap, every task sees the state left by the previous one.
+    */
+    @Test
+    public void testTasksOfSameChatRunOneAtATime() throws Exception {
+        ChatExecutor chatExecutor = new ChatExecutor(50);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Integer> history = new ArrayList<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            results.add(pool.submit(() -> chatExecutor.runInChat(1L, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                int seen = history.size();
+                sleep(1);
+                history.add(seen);
+                running.decrementAndGet();
+                return seen;
+            })));
+        }
+        for (Future<Integer> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertThat(maxRunning.get()).isEqualTo(1);
+        for (int i = 0; i < history.size(); i++) {
+            assertThat(history.get(i)).isEqualTo(i);
+        }
+        assertThat(chatExecutor.activeChats()).isZero();
+    }
+
+    /*
+    * A task blocked in one chat doesn't delay a task of another chat.
+    */
+    @Test
+    public void testDifferentChatsRunInParallel() throws Exception {
+        ChatExecutor chatExecutor = new ChatExecutor(4);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Future<String> blocked = pool.submit(() -> chatExecutor.runInChat(1L, () -> {
+            firstStarted.countDown();
+            await(release);
+            return "first";
+        }));
+        assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        Future<String> other = pool.submit(() -> chatExecutor.runInChat(2L, () -> "second"));
+
+        assertThat(other.get(5, TimeUnit.SECONDS)).isEqualTo("second");
+        assertThat(chatExecutor.activeChats()).isEqualTo(1);
+
+        release.countDown();
+        assertThat(blocked.get(5, TimeUnit.SECONDS)).isEqualTo("first");
+        assertThat(chatExecutor.activeChats()).isZero();
+        pool.shutdown();
+    }
+
+    /*
+    * A chat flooded with messages can't take every thread of a shared pool, so other chats still get through.
+    *
+    * This test:
+    *   1. Blocks a task of chat 1 on a pool of 4 threads, with at most 2 tasks allowed to wait behind it.
+    *   2. Submits 20 more tasks for chat 1: 2 wait for their turn and the other 18 are rejected right away.
+    *   3. Checks a task of chat 2 submitted after them runs while chat 1 is still blocked.
+    */
+    @Test
+    public void testSaturatedChatDoesNotBlockOtherChats() throws Exception {
+        ChatExecutor chatExecutor = new ChatExecutor(2);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Future<String> blocked = pool.submit(() -> chatExecutor.runInChat(1L, () -> {
+            firstStarted.countDown();
+            await(release);
+            return "first";
+        }));
+        assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        List<Future<String>> flood = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            flood.add(pool.submit(() -> chatExecutor.runInChat(1L, () -> "queued")));
+        }
+        Future<String> other = pool.submit(() -> chatExecutor.runInChat(2L, () -> "second"));
+
+        assertThat(other.get(5, TimeUnit.SECONDS)).isEqualTo("second");
+        assertThat(chatExecutor.pendingTasks(1L)).isEqualTo(3);
+        assertThatThrownBy(() -> chatExecutor.runInChat(1L, () -> "extra"))
+                .isInstanceOf(ChatBusyException.class);
+
+        release.countDown();
+        assertThat(blocked.get(5, TimeUnit.SECONDS)).isEqualTo("first");
+        int completed = 0;
+        int rejected = 0;
+        for (Future<String> result : flood) {
+            try {
+                assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("queued");
+                completed++;
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(ChatBusyException.class);
+                rejected++;
+            }
+        }
+        pool.shutdown();
+
+        assertThat(completed).isEqualTo(2);
+        assertThat(rejected).isEqualTo(18);
+        assertThat(chatExecutor.activeChats()).isZero();
+    }
+
+    // Helper methods
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.alanquintana.geminiCaller.services;
+
+import com.alanquintana.geminiCaller.models.Chat;
+import com.alanquintana.geminiCaller.models.Message;
+import com.alanquintana.geminiCaller.repositories.MessageRepository;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ConversationRetrieverTest {
+
+    private final MessageRepository messageRepository = mock(MessageRepository.class);
+
+    /*
+    * With retrieval enabled, an old turn about the same topic is returned for a new prompt.
+    */
+    @Test
+    public void testRetrieverFindsRelevantMessageInChat() {
+        ConversationRetriever retriever = new ConversationRetriever(new HashingMessageEmbedder(), messageRepository,
+                true, 2, "chat", 64, 100);
+        Chat chat = new Chat();
+        chat.setId(1L);
+
+        retriever.index(createMessage(chat, 1L, "What is the capital of France?", "The capital of France is Paris."));
+        retriever.index(createMessage(chat, 2L, "Give me a pizza dough recipe", "Mix flour, water, yeast and salt..."));
+        retriever.index(createMessage(chat, 3L, "How does garbage collection work in Java?", "The JVM tracks reachable objects..."));
+
+        assertThat(retriever.findRelevantMessageIds(1L, "how long should pizza dough rest?", 1)).containsExactly(2L);
+        assertThat(retriever.findRelevantMessageIds(2L, "how long should pizza dough rest?", 1)).isEmpty();
+    }
+
+    /*
+    * With global scope, messages of every chat are searched.
+    */
+    @Test
+    public void testRetrieverGlobalScopeSearchesAllChats() {
+        ConversationRetriever retriever = new ConversationRetriever(new HashingMessageEmbedder(), messageRepository,
+                true, 2, "global", 64, 100);
+        Chat chat = new Chat();
+        chat.setId(1L);
+
+        retriever.index(createMessage(chat, 1L, "Give me a pizza dough recipe", "Mix flour, water, yeast and salt..."));
+
+        assertThat(retriever.findRelevantMessageIds(2L, "how long should pizza dough rest?", 1)).containsExactly(1L);
+    }
+
+    /*
+    * Past max-chat-indexes the least recently used chat index is dropped, and it is rebuilt from the
+    * database the next time its chat is searched.
+    *
+    * This test:
+    *   1. Keeps a single chat index and indexes a message in chat 1, which is found without reloading the chat.
+    *   2. Indexes a message in chat 2, which drops the index of chat 1.
+    *   3. Checks searching chat 1 reloads its messages from the repository and still finds the message.
+    */
+    @Test
+    public void testEvictedChatIndexIsRebuiltFromDatabase() {
+        ConversationRetriever retriever = new ConversationRetriever(new HashingMessageEmbedder(), messageRepository,
+                true, 2, "chat", 64, 1);
+        Chat chat1 = new Chat();
+        chat1.setId(1L);
+        Chat chat2 = new Chat();
+        chat2.setId(2L);
+        Message pizza = createMessage(chat1, 1L, "Give me a pizza dough recipe", "Mix flour, water, yeast and salt...");
+        when(messageRepository.findByChatId(1L)).thenReturn(Arrays.asList(pizza));
+
+        retriever.index(pizza);
+        assertThat(retriever.findRelevantMessageIds(1L, "how long should pizza dough rest?", 1)).containsExactly(1L);
+        verify(messageRepository, times(1)).findByChatId(1L);
+
+        retriever.index(createMessage(chat2, 2L, "What is the capital of France?", "Paris."));
+
+        assertThat(retriever.findRelevantMessageIds(1L, "how long should pizza dough rest?", 1)).containsExactly(1L);
+        verify(messageRepository, times(2)).findByChatId(1L);
+    }
+
+    @Test
+    public void testRetrieverDisabledDoesNothing() {
+        ConversationRetriever retriever = new ConversationRetriever(new HashingMessageEmbedder(), messageRepository,
+                false, 2, "chat", 64, 100);
+        Chat chat = new Chat();
+        chat.setId(1L);
+
+        retriever.index(createMessage(chat, 1L, "What is the capital of France?", "Paris."));
+
+        assertThat(retriever.findRelevantMessageIds(1L, "capital of France", 1)).isEmpty();
+    }
+
+    // Helper methods
+
+    private Message createMessage(Chat chat, Long id, String userMessage, String geminiResponse) {
+        Message message = new Message();
+        message.setId(id);
+        message.setChat(chat);
+        message.setUserMessage(userMessage);
+        message.setGeminiResponse(geminiResponse);
+        message.setTimestamp(System.currentTimeMillis());
+        return message;
+    }
+}
@@ -0,0 +1,118 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GeminiRequestHedgerTest {
+
+    /*
+    * Once enough latencies are known, a request slower than the percentile is hedged,
+    * the hedge answer is used and the slow request is cancelled.
+    */
+    @Test
+    public void testSlowRequestIsHedgedAndLoserCancelled() {
+        GeminiRequestHedger hedger = new GeminiRequestHedger(true, 95, 10, 1.0);
+        for (int i = 0; i < 20; i++) {
+            assertThat(hedger.execute(() -> Mono.just("fast")).block()).isEqualTo("fast");
+        }
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean slowCancelled = new AtomicBoolean();
+        String response = hedger.execute(() -> {
+            if (calls.incrementAndGet() == 1) {
+                return Mono.delay(Duration.ofSeconds(5)).map(tick -> "slow")
+                        .doOnCancel(() -> slowCancelled.set(true));
+            }
+            return Mono.just("hedge");
+        }).block(Duration.ofSeconds(2));
+
+        assertThat(response).isEqualTo("hedge");
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(slowCancelled.get()).isTrue();
+    }
+
+    /*
+    * Without budget left the hedge is skipped and the original request is awaited.
+    */
+    @Test
+    public void testHedgesRespectBudget() {
+        GeminiRequestHedger hedger = new GeminiRequestHedger(true, 95, 10, 0.01);
+        for (int i = 0; i < 20; i++) {
+            hedger.execute(() -> Mono.just("fast")).block();
+        }
+
+        AtomicInteger calls = new AtomicInteger();
+        String response = hedger.execute(() -> {
+            calls.incrementAndGet();
+            return Mono.delay(Duration.ofMillis(100)).map(tick -> "slow");
+        }).block(Duration.ofSeconds(2));
+
+        assertThat(response).isEqualTo("slow");
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    /*
+    * A hedge that fails doesn't end the call, the slower original request still answers.
+    */
+    @Test
+    public void testFailedHedgeDoesNotBeatPrimary() {
+        GeminiRequestHedger hedger = new GeminiRequestHedger(true, 95, 10, 1.0);
+        for (int i = 0; i < 20; i++) {
+            hedger.execute(() -> Mono.just("fast")).block();
+        }
+
+        AtomicInteger calls = new AtomicInteger();
+        String response = hedger.execute(() -> {
+            if (calls.incrementAndGet() == 1) {
+                return Mono.delay(Duration.ofMillis(200)).map(tick -> "primary");
+            }
+            return Mono.error(new IllegalStateException("hedge failed"));
+        }).block(Duration.ofSeconds(2));
+
+        assertThat(response).isEqualTo("primary");
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    /*
+    * A request failing before the hedge delay fails the call with its own error and no hedge is sent.
+    */
+    @Test
+    public void testPrimaryErrorIsReportedWithoutHedging() {
+        GeminiRequestHedger hedger = new GeminiRequestHedger(true, 95, 100, 1.0);
+        for (int i = 0; i < 20; i++) {
+            hedger.execute(() -> Mono.just("fast")).block();
+        }
+
+        AtomicInteger calls = new AtomicInteger();
+        Mono<String> response = hedger.execute(() -> {
+            calls.incrementAndGet();
+            return Mono.error(new IllegalStateException("bad request"));
+        });
+
+        assertThatThrownBy(() -> response.block(Duration.ofSeconds(2)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("bad request");
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDisabledHedgerCallsOnce() {
+        GeminiRequestHedger hedger = new GeminiRequestHedger(false, 95, 10, 1.0);
+        AtomicInteger calls = new AtomicInteger();
+
+        String response = hedger.execute(() -> {
+            calls.incrementAndGet();
+            return Mono.just("only");
+        }).block();
+
+        assertThat(response).isEqualTo("only");
+        assertThat(calls.get()).isEqualTo(1);
+    }
+}
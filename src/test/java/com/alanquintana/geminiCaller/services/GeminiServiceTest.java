@@ -0,0 +1,305 @@
+package com.alanquintana.geminiCaller.services;
+
+import com.alanquintana.geminiCaller.models.Chat;
+import com.alanquintana.geminiCaller.models.Message;
+import com.alanquintana.geminiCaller.repositories.ChatRepository;
+import com.alanquintana.geminiCaller.repositories.MessageRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class GeminiServiceTest {
+
+    private ChatRepository chatRepository;
+    private MessageRepository messageRepository;
+    private ConversationRetriever conversationRetriever;
+    private GeminiService geminiService;
+
+    private final Chat chat = new Chat();
+
+    @BeforeEach
+    public void setUp() {
+        chatRepository = mock(ChatRepository.class);
+        messageRepository = mock(MessageRepository.class);
+        conversationRetriever = mock(ConversationRetriever.class);
+        geminiService = new GeminiService(WebClient.builder(), chatRepository, messageRepository,
+                conversationRetriever, new ChatExecutor(4), new GeminiRequestHedger(false, 95, 200, 0.05));
+        chat.setId(1L);
+    }
+
+    /*
+    * Retrieved messages already among the recent ones are skipped, the rest are added before the
+    * recent messages in chronological order.
+    *
+    * This test:
+    *   1. Stores two recent messages (11 and 12) in the chat.
+    *   2. Makes the retriever return 12 (recent), 3 and 1, asking for top-k plus the number of recent messages.
+    *   3. Checks the context is 1, 3, 11, 12 even though the repository returns 3 before 1.
+    */
+    @Test
+    public void testContextAddsRelevantOlderMessagesInOrder() {
+        Message recent1 = createMessage(11L, "recent question 1", 1100L);
+        Message recent2 = createMessage(12L, "recent question 2", 1200L);
+        Message older1 = createMessage(1L, "older question 1", 100L);
+        Message older3 = createMessage(3L, "older question 3", 300L);
+
+        when(messageRepository.findByChatIdOrderByTimestampDesc(1L)).thenReturn(Arrays.asList(recent2, recent1));
+        when(conversationRetriever.isEnabled()).thenReturn(true);
+        when(conversationRetriever.getTopK()).thenReturn(2);
+        when(conversationRetriever.findRelevantMessageIds(1L, "new question", 4))
+                .thenReturn(Arrays.asList(12L, 3L, 1L, 5L));
+        when(messageRepository.findAllById(Arrays.asList(3L, 1L))).thenReturn(Arrays.asList(older3, older1));
+
+        String context = geminiService.buildConversationContext(1L, "new question");
+
+        assertThat(context).isEqualTo(
+                "User: older question 1\nGemini: answer to older question 1\n\n"
+                + "User: older question 3\nGemini: answer to older question 3\n\n"
+                + "User: recent question 1\nGemini: answer to recent question 1\n\n"
+                + "User: recent question 2\nGemini: answer to recent question 2");
+        verify(conversationRetriever).findRelevantMessageIds(1L, "new question", 4);
+        verify(messageRepository).findAllById(Arrays.asList(3L, 1L));
+    }
+
+    @Test
+    public void testContextWithRetrievalDisabledOnlyHasRecentMessages() {
+        Message recent = createMessage(11L, "recent question", 1100L);
+        when(messageRepository.findByChatIdOrderByTimestampDesc(1L)).thenReturn(Arrays.asList(recent));
+        when(conversationRetriever.isEnabled()).thenReturn(false);
+
+        String context = geminiService.buildConversationContext(1L, "new question");
+
+        assertThat(context).isEqualTo("User: recent question\nGemini: answer to recent question");
+        verify(conversationRetriever, never()).findRelevantMessageIds(anyLong(), anyString(), anyInt());
+        verify(messageRepository, never()).findAllById(any());
+    }
+
+    @Test
+    public void testContextWhenAllRetrievedMessagesAreRecent() {
+        Message recent = createMessage(11L, "recent question", 1100L);
+        when(messageRepository.findByChatIdOrderByTimestampDesc(1L)).thenReturn(Arrays.asList(recent));
+        when(conversationRetriever.isEnabled()).thenReturn(true);
+        when(conversationRetriever.getTopK()).thenReturn(3);
+        when(conversationRetriever.findRelevantMessageIds(1L, "new question", 4)).thenReturn(Arrays.asList(11L));
+
+        String context = geminiService.buildConversationContext(1L, "new question");
+
+        assertThat(context).isEqualTo("User: recent question\nGemini: answer to recent question");
+        verify(messageRepository, never()).findAllById(any());
+    }
+
+    /*
+    * A failing retrieval index, for example an embedder returning vectors of the wrong dimension, doesn't
+    * fail an exchange: the answer is returned and stored.
+    */
+    @Test
+    public void testRetrievalFailuresDoNotFailExchange() {
+        List<Message> stored = useInMemoryMessages();
+        stubChats(1L);
+        when(conversationRetriever.isEnabled()).thenReturn(true);
+        when(conversationRetriever.getTopK()).thenReturn(3);
+        when(conversationRetriever.findRelevantMessageIds(anyLong(), anyString(), anyInt()))
+                .thenThrow(new IllegalArgumentException("Expected vector of dimension 128 but got 64"));
+        doThrow(new IllegalArgumentException("Expected vector of dimension 128 but got 64"))
+                .when(conversationRetriever).index(any(Message.class));
+        GeminiService service = serviceWithGemini(request -> Mono.just(geminiResponse("hello")));
+
+        GeminiReply reply = service.chatWithGemini(1L, "question");
+
+        assertThat(reply.getResponse()).isEqualTo("hello");
+        assertThat(stored).hasSize(1);
+        verify(conversationRetriever).index(stored.get(0));
+    }
+
+    /*
+    * Two messages for different chats in flight at the same time are each stored in their own chat.
+    *
+    * This test:
+    *   1. Makes the gemini stub wait until both requests reached it, which only happens if chats run in parallel.
+    *   2. Checks every reply and every stored message carries the chat id its request was sent to.
+    */
+    @Test
+    public void testConcurrentMessagesLandInTheirOwnChats() throws Exception {
+        List<Message> stored = useInMemoryMessages();
+        stubChats(1L, 2L);
+        CyclicBarrier bothInFlight = new CyclicBarrier(2);
+        GeminiService service = serviceWithGemini(request -> Mono.fromCallable(() -> {
+            bothInFlight.await(5, TimeUnit.SECONDS);
+            return geminiResponse("ok");
+        }));
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Future<GeminiReply> first = pool.submit(() -> service.chatWithGemini(1L, "message for chat 1"));
+        Future<GeminiReply> second = pool.submit(() -> service.chatWithGemini(2L, "message for chat 2"));
+
+        assertThat(first.get(10, TimeUnit.SECONDS).getChatId()).isEqualTo(1L);
+        assertThat(second.get(10, TimeUnit.SECONDS).getChatId()).isEqualTo(2L);
+        pool.shutdown();
+
+        assertThat(stored).hasSize(2);
+        for (Message message : stored) {
+            assertThat(message.getUserMessage()).isEqualTo("message for chat " + message.getChat().getId());
+        }
+        verify(chatRepository, never()).save(any());
+    }
+
+    /*
+    * Messages sent to the same chat at the same time reach gemini one after another, each one
+    * after the previous answer was stored.
+    */
+    @Test
+    public void testConcurrentMessagesInSameChatSeePredecessors() throws Exception {
+        List<Message> stored = useInMemoryMessages();
+        stubChats(1L);
+        List<Integer> storedWhenCalled = Collections.synchronizedList(new ArrayList<>());
+        GeminiService service = serviceWithGemini(request -> Mono.fromCallable(() -> {
+            storedWhenCalled.add(stored.size());
+            Thread.sleep(20);
+            return geminiResponse("ok");
+        }));
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        List<Future<GeminiReply>> replies = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String text = "message " + i;
+            replies.add(pool.submit(() -> service.chatWithGemini(1L, text)));
+        }
+        for (Future<GeminiReply> reply : replies) {
+            assertThat(reply.get(10, TimeUnit.SECONDS).getChatId()).isEqualTo(1L);
+        }
+        pool.shutdown();
+
+        assertThat(storedWhenCalled).containsExactly(0, 1, 2);
+        assertThat(stored).hasSize(3);
+    }
+
+    @Test
+    public void testMessageWithoutChatCreatesNewChat() {
+        List<Message> stored = useInMemoryMessages();
+        when(chatRepository.save(any(Chat.class))).thenAnswer(invocation -> {
+            Chat created = invocation.getArgument(0);
+            created.setId(42L);
+            when(chatRepository.findById(42L)).thenReturn(Optional.of(created));
+            return created;
+        });
+        GeminiService service = serviceWithGemini(request -> Mono.just(geminiResponse("hello")));
+
+        GeminiReply reply = service.chatWithGemini(null, "first message");
+
+        assertThat(reply.getChatId()).isEqualTo(42L);
+        assertThat(reply.getResponse()).isEqualTo("hello");
+        assertThat(stored).extracting(message -> message.getChat().getId()).containsExactly(42L);
+    }
+
+    /*
+    * Interrupting the thread waiting for gemini, as Spring MVC does when the async request times out,
+    * cancels the upstream request and stores nothing.
+    */
+    @Test
+    public void testInterruptCancelsGeminiRequest() throws Exception {
+        stubChats(1L);
+        CountDownLatch requestSent = new CountDownLatch(1);
+        AtomicBoolean requestCancelled = new AtomicBoolean();
+        GeminiService service = serviceWithGemini(request -> Mono.<ClientResponse>never()
+                .doOnSubscribe(subscription -> requestSent.countDown())
+                .doOnCancel(() -> requestCancelled.set(true)));
+
+        AtomicReference<GeminiReply> reply = new AtomicReference<>();
+        Thread caller = new Thread(() -> reply.set(service.chatWithGemini(1L, "slow question")));
+        caller.start();
+        assertThat(requestSent.await(5, TimeUnit.SECONDS)).isTrue();
+        caller.interrupt();
+        caller.join(5000);
+
+        assertThat(caller.isAlive()).isFalse();
+        assertThat(reply.get().getChatId()).isEqualTo(1L);
+        assertThat(reply.get().getResponse()).isEqualTo("Request cancelled");
+        assertThat(requestCancelled.get()).isTrue();
+        verify(messageRepository, never()).save(any());
+    }
+
+    // Helper methods
+
+    private GeminiService serviceWithGemini(ExchangeFunction gemini) {
+        GeminiService service = new GeminiService(WebClient.builder().exchangeFunction(gemini), chatRepository,
+                messageRepository, conversationRetriever, new ChatExecutor(4),
+                new GeminiRequestHedger(false, 95, 200, 0.05));
+        ReflectionTestUtils.setField(service, "apiKey", "test-key");
+        return service;
+    }
+
+    private ClientResponse geminiResponse(String text) {
+        return ClientResponse.create(HttpStatus.OK)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body("{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"" + text + "\"}]}}]}")
+                .build();
+    }
+
+    private void stubChats(Long... chatIds) {
+        for (Long chatId : chatIds) {
+            Chat stubbed = new Chat();
+            stubbed.setId(chatId);
+            when(chatRepository.existsById(chatId)).thenReturn(true);
+            when(chatRepository.findById(chatId)).thenReturn(Optional.of(stubbed));
+        }
+    }
+
+    //Backs the message repository with a list so saved messages are visible to later context lookups.
+    private List<Message> useInMemoryMessages() {
+        List<Message> stored = new CopyOnWriteArrayList<>();
+        AtomicLong ids = new AtomicLong();
+        when(messageRepository.save(any(Message.class))).thenAnswer(invocation -> {
+            Message message = invocation.getArgument(0);
+            message.setId(ids.incrementAndGet());
+            stored.add(message);
+            return message;
+        });
+        when(messageRepository.findByChatIdOrderByTimestampDesc(anyLong())).thenAnswer(invocation -> {
+            Long chatId = invocation.getArgument(0);
+            List<Message> messages = new ArrayList<>();
+            for (Message message : stored) {
+                if (message.getChat().getId().equals(chatId)) {
+                    messages.add(0, message);
+                }
+            }
+            return messages;
+        });
+        return stored;
+    }
+
+    private Message createMessage(Long id, String userMessage, Long timestamp) {
+        Message message = new Message();
+        message.setId(id);
+        message.setChat(chat);
+        message.setUserMessage(userMessage);
+        message.setGeminiResponse("answer to " + userMessage);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+}
@@ -0,0 +1,47 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class HashingMessageEmbedderTest {
+
+    private final HashingMessageEmbedder embedder = new HashingMessageEmbedder();
+
+    /*
+    * The same text always gives the same vector, with the advertised dimension and a norm of 1.
+    */
+    @Test
+    public void testEmbeddingIsDeterministicAndNormalized() {
+        float[] first = embedder.embed("How do I bake a pizza at home?");
+        float[] second = embedder.embed("How do I bake a pizza at home?");
+
+        assertThat(first).hasSize(embedder.dimension());
+        assertThat(first).containsExactly(second);
+        assertThat(dot(first, first)).isCloseTo(1f, within(1e-5f));
+    }
+
+    @Test
+    public void testSimilarTextsAreCloserThanUnrelatedOnes() {
+        float[] query = embedder.embed("How do I bake a pizza at home?");
+        float[] similar = embedder.embed("pizza dough recipe to bake at home");
+        float[] unrelated = embedder.embed("Explain dependency injection in Spring Boot");
+
+        assertThat(dot(query, similar)).isGreaterThan(dot(query, unrelated));
+    }
+
+    @Test
+    public void testEmptyTextGivesZeroVector() {
+        assertThat(embedder.embed("")).containsOnly(0f);
+        assertThat(embedder.embed(null)).containsOnly(0f);
+    }
+
+    private float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,136 @@
+package com.alanquintana.geminiCaller.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+* Benchmark for the retrieval index, run with scripts/retrieval-benchmark.sh (not part of the test suite).
+*
+* Builds an HnswIndex with synthetic chat messages embedded by HashingMessageEmbedder and reports:
+*   - insert time per message
+*   - mean, p50, p99 and max search latency, over every query of every round
+*   - recall: share of queries whose exact nearest neighbour (brute force) is among the k results
+*
+* Messages are 20 words drawn from a 5000 word vocabulary with a skewed distribution, with a fixed seed
+* so every run uses the same data. Queries are stored messages with a few words replaced.
+*
+* Arguments: [messages=100000] [ef=32,40,48] [k=13] [queries=1000] [rounds=5]
+* ef is a comma separated list, each value is measured on the same index.
+* k defaults to 13, what ConversationRetriever asks for with top-k 3 and 10 recent messages.
+*/
+public class HnswIndexBenchmark {
+
+    private static final int WORDS_PER_MESSAGE = 20;
+    private static final int VOCABULARY = 5000;
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        String[] efValues = (args.length > 1 ? args[1] : "32,40,48").split(",");
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 13;
+        int queries = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        Random random = new Random(1);
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            vocabulary[i] = "w" + Integer.toString(random.nextInt(1 << 30), 36);
+        }
+
+        HashingMessageEmbedder embedder = new HashingMessageEmbedder();
+        HnswIndex index = new HnswIndex(embedder.dimension(), ConversationRetriever.HNSW_M,
+                ConversationRetriever.HNSW_EF_CONSTRUCTION);
+        List<String[]> texts = new ArrayList<>(messages);
+        List<float[]> vectors = new ArrayList<>(messages);
+
+        long buildStart = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            String[] words = new String[WORDS_PER_MESSAGE];
+            for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+                words[w] = vocabulary[(int) Math.abs(random.nextGaussian() * VOCABULARY / 6) % VOCABULARY];
+            }
+            float[] vector = embedder.embed(String.join(" ", words));
+            texts.add(words);
+            vectors.add(vector);
+            index.add(i, vector);
+        }
+        double buildMillis = (System.nanoTime() - buildStart) / 1e6;
+
+        float[][] queryVectors = new float[queries][];
+        for (int q = 0; q < queries; q++) {
+            String[] words = texts.get(random.nextInt(messages)).clone();
+            for (int replaced = 0; replaced < 3; replaced++) {
+                words[random.nextInt(WORDS_PER_MESSAGE)] = vocabulary[random.nextInt(VOCABULARY)];
+            }
+            queryVectors[q] = embedder.embed(String.join(" ", words));
+        }
+
+        long[] exact = new long[queries];
+        for (int q = 0; q < queries; q++) {
+            exact[q] = exactNearest(vectors, queryVectors[q]);
+        }
+
+        System.out.printf("messages=%d dimension=%d m=%d efConstruction=%d k=%d queries=%d rounds=%d%n",
+                messages, embedder.dimension(), ConversationRetriever.HNSW_M,
+                ConversationRetriever.HNSW_EF_CONSTRUCTION, k, queries, rounds);
+        System.out.printf("insert: %.2f ms per message (%.1f s total)%n", buildMillis / messages, buildMillis / 1e3);
+        for (String efValue : efValues) {
+            measureSearch(index, queryVectors, exact, Integer.parseInt(efValue.trim()), k, rounds);
+        }
+    }
+
+    private static void measureSearch(HnswIndex index, float[][] queryVectors, long[] exact, int ef, int k, int rounds) {
+        int queries = queryVectors.length;
+
+        //Warm up the JIT before measuring.
+        for (int round = 0; round < 3; round++) {
+            for (float[] query : queryVectors) {
+                index.search(query, k, ef);
+            }
+        }
+
+        long[] latencies = new long[queries * rounds];
+        int hits = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int q = 0; q < queries; q++) {
+                long start = System.nanoTime();
+                List<Long> result = index.search(queryVectors[q], k, ef);
+                latencies[round * queries + q] = System.nanoTime() - start;
+                if (round == 0 && result.contains(exact[q])) {
+                    hits++;
+                }
+            }
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("ef=%d search: mean %.0f us, p50 %.0f us, p99 %.0f us, max %.0f us, recall %.3f%n",
+                ef,
+                Arrays.stream(latencies).average().orElse(0) / 1e3,
+                percentile(latencies, 50) / 1e3,
+                percentile(latencies, 99) / 1e3,
+                latencies[latencies.length - 1] / 1e3,
+                (double) hits / queries);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.ceil(percentile / 100 * sorted.length) - 1];
+    }
+
+    private static long exactNearest(List<float[]> vectors, float[] query) {
+        long best = -1;
+        float bestSimilarity = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < vectors.size(); i++) {
+            float[] vector = vectors.get(i);
+            float similarity = 0;
+            for (int d = 0; d < vector.length; d++) {
+                similarity += vector[d] * query[d];
+            }
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,163 @@
+package com.alanquintana.geminiCaller.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HnswIndexTest {
+
+    /*
+    * Compares the approximate search of the index against a brute force scan over random vectors.
+    *
+    * This test:
+    *   1. Inserts 5000 random normalized vectors, more than one storage chunk.
+    *   2. For 100 perturbed copies of stored vectors, checks the true nearest neighbour is in the top 5.
+    */
+    @Test
+    public void testFindsNearestNeighbours() {
+        int dimension = 32;
+        Random random = new Random(7);
+        HnswIndex index = new HnswIndex(dimension, 16, 100);
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            float[] vector = randomVector(random, dimension);
+            vectors.add(vector);
+            index.add(i, vector);
+        }
+
+        int hits = 0;
+        for (int q = 0; q < 100; q++) {
+            float[] query = vectors.get(random.nextInt(vectors.size())).clone();
+            query[random.nextInt(dimension)] += 0.1f;
+            normalize(query);
+
+            if (index.search(query, 5, 64).contains(exactNearest(vectors, query))) {
+                hits++;
+            }
+        }
+
+        assertThat(index.size()).isEqualTo(5000);
+        assertThat(hits).isGreaterThanOrEqualTo(95);
+    }
+
+    @Test
+    public void testEmptyIndexAndSmallIndex() {
+        HnswIndex index = new HnswIndex(4, 4, 8);
+        assertThat(index.search(new float[] {1, 0, 0, 0}, 3, 16)).isEmpty();
+
+        index.add(10L, new float[] {1, 0, 0, 0});
+        index.add(20L, new float[] {0, 1, 0, 0});
+
+        assertThat(index.search(new float[] {0, 1, 0, 0}, 3, 16)).containsExactly(20L, 10L);
+        assertThatThrownBy(() -> index.add(30L, new float[] {1, 0}))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /*
+    * An index starts with room for a few nodes and grows its storage while nodes are added, every node
+    * stays findable across the growth steps.
+    */
+    @Test
+    public void testEveryNodeFoundWhileStorageGrows() {
+        int dimension = 16;
+        Random random = new Random(5);
+        HnswIndex index = new HnswIndex(dimension, 4, 16);
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            float[] vector = randomVector(random, dimension);
+            vectors.add(vector);
+            index.add(100 + i, vector);
+        }
+
+        for (int i = 0; i < vectors.size(); i++) {
+            assertThat(index.search(vectors.get(i), 1, 100)).containsExactly(100L + i);
+        }
+    }
+
+    /*
+    * Searches running while other threads insert always return ids that were inserted.
+    */
+    @Test
+    public void testSearchesWhileInserting() throws Exception {
+        int dimension = 16;
+        HnswIndex index = new HnswIndex(dimension, 8, 32);
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            index.add(i, randomVector(random, dimension));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            int offset = 1000 * (t + 1);
+            tasks.add(pool.submit(() -> {
+                Random threadRandom = new Random(offset);
+                for (int i = 0; i < 1000; i++) {
+                    index.add(offset + i, randomVector(threadRandom, dimension));
+                }
+            }));
+            tasks.add(pool.submit(() -> {
+                Random threadRandom = new Random(-offset);
+                for (int i = 0; i < 1000; i++) {
+                    for (Long id : index.search(randomVector(threadRandom, dimension), 5, 32)) {
+                        assertThat(id < 100 || (id >= 1000 && id < 3000)).isTrue();
+                    }
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertThat(index.size()).isEqualTo(2100);
+    }
+
+    // Helper methods
+
+    private long exactNearest(List<float[]> vectors, float[] query) {
+        long best = -1;
+        float bestSimilarity = -2;
+        for (int i = 0; i < vectors.size(); i++) {
+            float similarity = dot(query, vectors.get(i));
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private float[] randomVector(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        normalize(vector);
+        return vector;
+    }
+
+    private void normalize(float[] vector) {
+        float norm = (float) Math.sqrt(dot(vector, vector));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+    }
+
+    private float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}